@@ -0,0 +1,109 @@
+package com.wangguangwu.test;
+
+/**
+ * 记录延迟的直方图，每次操作都会被记录，不受样本数量的限制
+ * <p>
+ * 每个 2 的幂区间分成 16 个桶，百分位数的相对误差不超过 1/16。
+ * 不是线程安全的，每个线程各自记录，结束后再合并
+ *
+ * @author wangguangwu
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final long[] counts = new long[Long.SIZE * SUB_COUNT];
+
+    private long total;
+
+    private long max;
+
+    /**
+     * 记录一次延迟
+     *
+     * @param nanos 延迟，单位纳秒
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[index(nanos)]++;
+        total++;
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * 合并另一个直方图
+     *
+     * @param other 另一个线程记录的直方图
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return 记录的次数
+     */
+    long count() {
+        return total;
+    }
+
+    /**
+     * @return 最大的延迟，精确值
+     */
+    long max() {
+        return max;
+    }
+
+    /**
+     * 百分位数，返回所在桶的上界
+     *
+     * @param p 0 到 1 之间
+     * @return 延迟，单位纳秒
+     */
+    long percentile(double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1L, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(lowest(i + 1) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long nanos) {
+        if (nanos < SUB_COUNT) {
+            return (int) nanos;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶的下界
+     */
+    private static long lowest(int index) {
+        int bucket = index >>> SUB_BITS;
+        int sub = index & (SUB_COUNT - 1);
+        if (bucket == 0) {
+            return sub;
+        }
+        int exp = bucket + SUB_BITS - 1;
+        return (1L << exp) | ((long) sub << (exp - SUB_BITS));
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.wangguangwu.test;
+
+/**
+ * 自旋锁退避时使用的空转
+ * <p>
+ * 空转期间不读任何共享变量，不产生缓存一致性流量。
+ * 每次迭代推进一个 xorshift 伪随机数，调用方用返回值决定下一轮空转的次数，
+ * 循环的结果一定会被用到，不会被 JIT 当作死代码消除
+ *
+ * @author wangguangwu
+ */
+final class SpinWait {
+
+    private SpinWait() {
+    }
+
+    /**
+     * 生成一个非 0 的种子，xorshift 的种子为 0 时会一直是 0
+     *
+     * @param x 任意整数
+     * @return 非 0 的种子
+     */
+    static int seed(int x) {
+        return x | 1;
+    }
+
+    /**
+     * 空转指定的次数
+     *
+     * @param seed  伪随机数的当前值，不能为 0
+     * @param spins 空转次数
+     * @return 推进 spins 次之后的伪随机数，不会为 0
+     */
+    static int spin(int seed, int spins) {
+        int x = seed;
+        for (int i = 0; i < spins; i++) {
+            // 每次迭代依赖上一次的结果
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+        }
+        return x;
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.wangguangwu.test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * test-and-test-and-set 自旋锁，带随机的指数退避
+ * <p>
+ * 和 MyLock 直接 CAS 不同，先读锁的状态，只有看到锁空闲时才 CAS，
+ * 自旋时只读本地缓存，不会让缓存行在 CPU 之间来回失效。
+ * 看到锁被占用或者 CAS 失败时，随机空转一段时间再试，期间不读锁的状态，等待的上限每次翻倍。
+ * 自旋一定轮数后还没拿到锁，就挂起线程，等释放锁的线程唤醒。
+ * 超时或者被中断时放弃等待，如果已经被选中唤醒，把唤醒交给下一个挂起的线程。
+ * <p>
+ * 不可重入，也不检查释放锁的线程是否持有锁。
+ *
+ * @author wangguangwu
+ */
+public class TTASLock implements Lock {
+
+    /**
+     * 退避上限的初始值，单位是自旋次数
+     */
+    static final int MIN_DELAY = 16;
+
+    /**
+     * 退避上限的最大值
+     */
+    static final int MAX_DELAY = 1 << 12;
+
+    /**
+     * 挂起之前最多退避的轮数
+     */
+    static final int MAX_SPIN_ROUNDS = 12;
+
+    private final AtomicBoolean locked = new AtomicBoolean();
+
+    /**
+     * 挂起的线程
+     */
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 自旋、退避，然后挂起直到获取锁或者超时
+     *
+     * @param deadline      超时时间点，0 表示不超时
+     * @param interruptible 是否响应中断
+     * @return 是否获取成功
+     */
+    private boolean acquire(long deadline, boolean interruptible) throws InterruptedException {
+        int delay = MIN_DELAY;
+        int seed = SpinWait.seed(ThreadLocalRandom.current().nextInt());
+        for (int round = 0; round < MAX_SPIN_ROUNDS; round++) {
+            // 先读，锁空闲时才 CAS
+            if (tryLock()) {
+                return true;
+            }
+            if (interruptible && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline != 0L && deadline - System.nanoTime() <= 0L) {
+                return false;
+            }
+            // 看到锁被占用或者 CAS 失败，随机退避，避免所有线程同时重试。
+            // 等满整个退避时间，期间不看锁是否已经释放，否则释放时所有线程会同时 CAS
+            seed = SpinWait.spin(seed, (seed & (delay - 1)) + 1);
+            delay = Math.min(delay << 1, MAX_DELAY);
+        }
+        return park(deadline, interruptible);
+    }
+
+    /**
+     * 自旋失败，挂起直到拿到锁或者超时
+     */
+    private boolean park(long deadline, boolean interruptible) throws InterruptedException {
+        final Thread current = Thread.currentThread();
+        // 先入队再检查锁的状态，和 unlock 中先释放再检查队列配合，不会丢失唤醒
+        waiters.add(current);
+        boolean acquired = false;
+        // 标记等待过程中是否中断过
+        boolean interrupted = false;
+        try {
+            while (!tryLock()) {
+                if (deadline == 0L) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        throw new InterruptedException();
+                    }
+                    interrupted = true;
+                }
+            }
+            acquired = true;
+            return true;
+        } finally {
+            waiters.remove(current);
+            if (!acquired) {
+                // 放弃等待之前可能已经被 unlock 选中唤醒，锁空闲时把唤醒交给下一个挂起的线程
+                signalNext();
+            }
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
+    }
+
+    private void signalNext() {
+        if (!locked.get()) {
+            Thread waiter = waiters.peek();
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    //=========================实现了 lock 接口================================
+
+    @Override
+    public void lock() {
+        try {
+            acquire(0L, false);
+        } catch (InterruptedException e) {
+            // 不响应中断时不会抛出
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        return !locked.get() && locked.compareAndSet(false, true);
+    }
+
+    @Override
+    public void unlock() {
+        locked.set(false);
+        // 唤醒一个挂起的线程，它醒来后和自旋的线程一起竞争
+        Thread waiter = waiters.peek();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        acquire(0L, true);
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long nanos = unit.toNanos(time);
+        if (nanos <= 0L) {
+            return tryLock();
+        }
+        // 0 表示不超时，所以避开 0
+        long deadline = System.nanoTime() + nanos;
+        return acquire(deadline == 0L ? 1L : deadline, true);
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+}
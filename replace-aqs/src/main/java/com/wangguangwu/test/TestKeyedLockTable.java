@@ -0,0 +1,173 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.KeyedLockTable;
+import util.concurrent.locks.ReentrantLock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 在 10^6 个 key 上测试 KeyedLockTable 的内存占用和吞吐量
+ * <p>
+ * 对照组是一个只增不减的 ConcurrentHashMap，每个 key 的锁创建后一直保留
+ *
+ * @author wangguangwu
+ */
+public class TestKeyedLockTable {
+
+    private static final int KEYS = 1_000_000;
+
+    private static final int THREADS = 4;
+
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * 预先装箱，避免测试中创建 key 对象
+     */
+    private static final Integer[] KEY_OBJECTS = new Integer[KEYS];
+
+    static {
+        for (int i = 0; i < KEYS; i++) {
+            KEY_OBJECTS[i] = i;
+        }
+    }
+
+    interface KeyedLocks {
+        void lock(Integer key);
+
+        void unlock(Integer key);
+
+        int size();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        footprint();
+
+        // 预热
+        throughput("warmup", table(), KEYS);
+
+        throughput("KeyedLockTable", table(), KEYS);
+        throughput("retained map", retained(), KEYS);
+        throughput("KeyedLockTable", table(), 16);
+        throughput("retained map", retained(), 16);
+    }
+
+    /**
+     * 一个线程同时持有 10^6 个 key 的锁，看每个锁占用的内存，再全部释放
+     */
+    private static void footprint() {
+        KeyedLockTable<Integer> table = new KeyedLockTable<>();
+        long before = usedMemory();
+        for (Integer key : KEY_OBJECTS) {
+            table.lock(key);
+        }
+        long held = usedMemory();
+        System.out.printf("footprint  held %,d keys: size=%,d  %,d bytes/key%n",
+                KEYS, table.size(), (held - before) / KEYS);
+        for (Integer key : KEY_OBJECTS) {
+            table.unlock(key);
+        }
+        long released = usedMemory();
+        System.out.printf("footprint  released all: size=%,d  retained %,d bytes%n",
+                table.size(), Math.max(0L, released - before));
+
+        ConcurrentHashMap<Integer, ReentrantLock> map = new ConcurrentHashMap<>();
+        before = usedMemory();
+        for (Integer key : KEY_OBJECTS) {
+            map.computeIfAbsent(key, k -> new ReentrantLock()).lock();
+        }
+        for (Integer key : KEY_OBJECTS) {
+            map.get(key).unlock();
+        }
+        System.out.printf("footprint  retained map after unlock: size=%,d  %,d bytes/key%n",
+                map.size(), (usedMemory() - before) / KEYS);
+    }
+
+    private static void throughput(String name, KeyedLocks locks, int keySpace) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long deadline = System.nanoTime() + DURATION_NANOS;
+                long n = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < deadline) {
+                    Integer key = KEY_OBJECTS[random.nextInt(keySpace)];
+                    locks.lock(key);
+                    try {
+                        n++;
+                    } finally {
+                        locks.unlock(key);
+                    }
+                }
+                ops.add(n);
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("%-16s keys=%,9d  threads=%d  throughput=%,12.0f ops/s  size after=%,d%n",
+                name, keySpace, THREADS, ops.sum() * 1e9 / DURATION_NANOS, locks.size());
+    }
+
+    private static KeyedLocks table() {
+        KeyedLockTable<Integer> table = new KeyedLockTable<>();
+        return new KeyedLocks() {
+            @Override
+            public void lock(Integer key) {
+                table.lock(key);
+            }
+
+            @Override
+            public void unlock(Integer key) {
+                table.unlock(key);
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+        };
+    }
+
+    private static KeyedLocks retained() {
+        ConcurrentHashMap<Integer, ReentrantLock> map = new ConcurrentHashMap<>();
+        return new KeyedLocks() {
+            @Override
+            public void lock(Integer key) {
+                map.computeIfAbsent(key, k -> new ReentrantLock()).lock();
+            }
+
+            @Override
+            public void unlock(Integer key) {
+                map.get(key).unlock();
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
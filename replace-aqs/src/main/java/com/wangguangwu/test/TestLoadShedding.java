@@ -0,0 +1,122 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.ReentrantLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 锁过载时对比直接排队和 tryLockIfQueueBelow 限制队列长度的延迟
+ * <p>
+ * 所有线程不停地请求锁，临界区比请求到达的速度慢，锁一直处于饱和状态。
+ * 使用公平锁，每次加锁都要排在已经等待的线程后面，不会被刚释放锁的线程插队，
+ * 所以排队的延迟能完整地体现在等待时间里。
+ * 被拒绝的请求模拟一次降级处理，稍后再重试，拒绝本身花费的时间单独统计
+ *
+ * @author wangguangwu
+ */
+public class TestLoadShedding {
+
+    private static final int THREADS = 32;
+
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    /**
+     * 被拒绝后的降级处理时间
+     */
+    private static final long REJECT_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        // 预热
+        run("warmup", Integer.MAX_VALUE);
+
+        run("no shedding", Integer.MAX_VALUE);
+        run("maxWaiters=8", 8);
+        run("maxWaiters=2", 2);
+    }
+
+    /**
+     * @param maxWaiters Integer.MAX_VALUE 表示不限制，直接 lock
+     */
+    private static void run(String name, int maxWaiters) throws InterruptedException {
+        ReentrantLock lock = new ReentrantLock(true);
+        LatencyHistogram[] accepted = new LatencyHistogram[THREADS];
+        LatencyHistogram[] rejected = new LatencyHistogram[THREADS];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> {
+                // 每次操作都记录，不受样本数量的限制
+                LatencyHistogram waits = new LatencyHistogram();
+                LatencyHistogram rejects = new LatencyHistogram();
+                long local = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long deadline = System.nanoTime() + DURATION_NANOS;
+                for (;;) {
+                    long begin = System.nanoTime();
+                    if (begin >= deadline) {
+                        break;
+                    }
+                    boolean locked;
+                    if (maxWaiters == Integer.MAX_VALUE) {
+                        lock.lock();
+                        locked = true;
+                    } else {
+                        locked = lock.tryLockIfQueueBelow(maxWaiters);
+                    }
+                    if (!locked) {
+                        rejects.record(System.nanoTime() - begin);
+                        LockSupport.parkNanos(REJECT_PAUSE_NANOS);
+                        continue;
+                    }
+                    try {
+                        waits.record(System.nanoTime() - begin);
+                        local += work(2000);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                sink += local;
+                accepted[index] = waits;
+                rejected[index] = rejects;
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram waits = new LatencyHistogram();
+        LatencyHistogram rejects = new LatencyHistogram();
+        for (int i = 0; i < THREADS; i++) {
+            waits.add(accepted[i]);
+            rejects.add(rejected[i]);
+        }
+        long ops = waits.count();
+        long rejectCount = rejects.count();
+        System.out.printf("%-14s accepted=%,9.0f ops/s  rejected=%5.1f%%  wait p50=%,12d ns  p99=%,12d ns  max=%,12d ns"
+                        + "  reject p99=%,8d ns  queue after=%d%n",
+                name, ops * 1e9 / DURATION_NANOS, 100.0 * rejectCount / Math.max(1L, rejectCount + ops),
+                waits.percentile(0.50), waits.percentile(0.99), waits.max(),
+                rejects.percentile(0.99), lock.getQueueLength());
+    }
+
+    private static long work(int iterations) {
+        long x = 0;
+        for (int i = 0; i < iterations; i++) {
+            x += i * 31L ^ x;
+        }
+        return x;
+    }
+
+}
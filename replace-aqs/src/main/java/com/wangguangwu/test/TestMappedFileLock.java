@@ -0,0 +1,214 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.MappedFileLock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用多个子进程对比 MappedFileLock 和 FileChannel.lock 的跨进程交接性能，
+ * 并演示持有锁的进程退出后锁可以被恢复
+ * <p>
+ * 文件布局：[0, 16) 锁，[16, 24) 计数器，[24, 40) 预热用的锁，[40, 48) 预热用的计数器。
+ * 每个子进程在握手之前先用预热的锁跑一遍同样的循环，测量时代码已经被 JIT 编译
+ *
+ * @author wangguangwu
+ */
+public class TestMappedFileLock {
+
+    private static final int PROCESSES = 4;
+
+    private static final int ITERATIONS = 20_000;
+
+    private static final int COUNTER_POSITION = MappedFileLock.SIZE;
+
+    private static final int WARMUP_LOCK_POSITION = COUNTER_POSITION + 8;
+
+    private static final int WARMUP_COUNTER_POSITION = WARMUP_LOCK_POSITION + MappedFileLock.SIZE;
+
+    private static final int FILE_SIZE = WARMUP_COUNTER_POSITION + 8;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            child(args);
+            return;
+        }
+        Path file = Files.createTempFile("mapped-file-lock", ".bin");
+        try {
+            report("FileChannel.lock", run(file, "channel", ITERATIONS), file);
+            report("MappedFileLock", run(file, "mapped", ITERATIONS), file);
+            recover(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 启动子进程，等所有子进程准备好之后同时开始，返回最慢的子进程耗时
+     */
+    private static long run(Path file, String mode, int iterations) throws Exception {
+        reset(file);
+        List<Process> processes = new ArrayList<>();
+        List<BufferedReader> outputs = new ArrayList<>();
+        for (int i = 0; i < PROCESSES; i++) {
+            Process process = startChild(mode, file, iterations);
+            processes.add(process);
+            outputs.add(new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)));
+        }
+        for (BufferedReader output : outputs) {
+            expect(output, "ready");
+        }
+        for (Process process : processes) {
+            OutputStream input = process.getOutputStream();
+            input.write("go\n".getBytes(StandardCharsets.UTF_8));
+            input.flush();
+        }
+        long slowest = 0L;
+        for (int i = 0; i < PROCESSES; i++) {
+            slowest = Math.max(slowest, Long.parseLong(outputs.get(i).readLine()));
+            processes.get(i).waitFor();
+        }
+        return slowest;
+    }
+
+    private static void report(String name, long elapsedNanos, Path file) throws IOException {
+        long total = (long) PROCESSES * ITERATIONS;
+        System.out.printf("%-18s processes=%d  ops=%,d  elapsed=%,6d ms  throughput=%,12.0f ops/s  counter=%,d%n",
+                name, PROCESSES, total, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                total * 1e9 / elapsedNanos, readCounter(file));
+    }
+
+    /**
+     * 子进程拿到锁之后直接退出，父进程应该能在退避期间发现并抢占这把锁
+     */
+    private static void recover(Path file) throws Exception {
+        reset(file);
+        Process process = startChild("crash", file, 1);
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        expect(output, "ready");
+        OutputStream input = process.getOutputStream();
+        input.write("go\n".getBytes(StandardCharsets.UTF_8));
+        input.flush();
+        expect(output, "locked");
+        process.waitFor();
+
+        try (MappedFileLock lock = new MappedFileLock(file)) {
+            long begin = System.nanoTime();
+            lock.lock();
+            try {
+                System.out.printf("%-18s recovered lock of dead process in %,d us%n", "MappedFileLock",
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //=========================子进程==========================================
+
+    private static Process startChild(String mode, Path file, int iterations) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                TestMappedFileLock.class.getName(), mode, file.toString(), String.valueOf(iterations))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static void child(String[] args) throws Exception {
+        String mode = args[0];
+        Path file = Paths.get(args[1]);
+        int iterations = Integer.parseInt(args[2]);
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             MappedFileLock lock = new MappedFileLock(file)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            // 在握手之前预热，用单独的锁和计数器，不影响测量的结果
+            try (MappedFileLock warmupLock = new MappedFileLock(file, WARMUP_LOCK_POSITION)) {
+                loop(mode, channel, warmupLock, buffer, WARMUP_LOCK_POSITION, WARMUP_COUNTER_POSITION, iterations);
+            }
+            System.out.println("ready");
+            System.out.flush();
+            stdin.readLine();
+
+            if ("crash".equals(mode)) {
+                lock.lock();
+                System.out.println("locked");
+                System.out.flush();
+                // 持有锁时直接退出，不释放
+                Runtime.getRuntime().halt(0);
+            }
+
+            long begin = System.nanoTime();
+            loop(mode, channel, lock, buffer, 0, COUNTER_POSITION, iterations);
+            System.out.println(System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * 加锁、计数器加一、释放，重复 iterations 次
+     *
+     * @param lockPosition FileChannel.lock 锁住的区域
+     */
+    private static void loop(String mode, FileChannel channel, MappedFileLock lock, MappedByteBuffer buffer,
+                             int lockPosition, int counterPosition, int iterations) throws IOException {
+        if ("mapped".equals(mode)) {
+            for (int i = 0; i < iterations; i++) {
+                lock.lock();
+                try {
+                    buffer.putLong(counterPosition, buffer.getLong(counterPosition) + 1);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else if ("channel".equals(mode)) {
+            for (int i = 0; i < iterations; i++) {
+                FileLock fileLock = channel.lock(lockPosition, MappedFileLock.SIZE, false);
+                try {
+                    buffer.putLong(counterPosition, buffer.getLong(counterPosition) + 1);
+                } finally {
+                    fileLock.release();
+                }
+            }
+        }
+    }
+
+    //=========================文件==========================================
+
+    private static void reset(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            for (int i = 0; i < FILE_SIZE; i += 8) {
+                buffer.putLong(i, 0L);
+            }
+            buffer.force();
+        }
+    }
+
+    private static long readCounter(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE).getLong(COUNTER_POSITION);
+        }
+    }
+
+    private static void expect(BufferedReader output, String expected) throws IOException {
+        String line = output.readLine();
+        if (!expected.equals(line)) {
+            throw new IllegalStateException("expected " + expected + " but was " + line);
+        }
+    }
+
+}
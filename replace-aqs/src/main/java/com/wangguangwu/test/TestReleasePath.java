@@ -0,0 +1,89 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.AbstractQueuedSynchronizer;
+import util.concurrent.locks.ReentrantLock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试 unlock 的耗时，对比 Unsafe 版本和 VarHandle 版本的 AbstractQueuedSynchronizer
+ * <p>
+ * 需要从 jar 运行，从 classes 目录运行时不会加载 META-INF/versions 下的类：
+ * <pre>
+ * mvn package
+ * # JDK 9+ 上默认加载 VarHandle 版本
+ * java -cp replace-aqs/target/replace-aqs-1.0-SNAPSHOT.jar com.wangguangwu.test.TestReleasePath
+ * # 关闭 multi-release，加载 Unsafe 版本
+ * java -Djdk.util.jar.enableMultiRelease=false -cp replace-aqs/target/replace-aqs-1.0-SNAPSHOT.jar com.wangguangwu.test.TestReleasePath
+ * </pre>
+ *
+ * @author wangguangwu
+ */
+public class TestReleasePath {
+
+    private static final int ITERATIONS = 20_000_000;
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * 重入的层数
+     */
+    private static final int DEPTH = 4;
+
+    public static void main(String[] args) {
+        System.out.println("AbstractQueuedSynchronizer backend: " + backend());
+        ReentrantLock lock = new ReentrantLock();
+        for (int round = 0; round < ROUNDS; round++) {
+            long uncontended = uncontended(lock);
+            long reentrant = reentrant(lock);
+            // 第一轮是预热
+            if (round > 0) {
+                System.out.printf("round %d  lock/unlock=%6.2f ns/op  reentrant unlock x%d=%6.2f ns/op%n",
+                        round, (double) uncontended / ITERATIONS, DEPTH, (double) reentrant / ITERATIONS);
+            }
+        }
+    }
+
+    /**
+     * 无竞争的加锁、释放，释放时 state 变为 0，走 volatile 写
+     */
+    private static long uncontended(ReentrantLock lock) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            lock.lock();
+            lock.unlock();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * 持有锁时重入再释放，释放时 state 不为 0，走 release 写
+     */
+    private static long reentrant(ReentrantLock lock) {
+        lock.lock();
+        try {
+            long begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (int j = 0; j < DEPTH; j++) {
+                    lock.lock();
+                }
+                for (int j = 0; j < DEPTH; j++) {
+                    lock.unlock();
+                }
+            }
+            return System.nanoTime() - begin;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String backend() {
+        try {
+            AbstractQueuedSynchronizer.class.getDeclaredField("unsafe");
+            return "Unsafe";
+        } catch (NoSuchFieldException e) {
+            return "VarHandle";
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.ReentrantLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 在很短的临界区上对比 TTASLock、TicketLock、MyLock 和 ReentrantLock 在 1 到 64 个线程下的吞吐量
+ *
+ * @author wangguangwu
+ */
+public class TestSpinLocks {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    private static final long DURATION_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * 只需要 lock 和 unlock，MyLock 没有实现 Lock 接口
+     */
+    interface SimpleLock {
+        void lock();
+
+        void unlock();
+    }
+
+    /**
+     * 临界区中修改的共享变量
+     */
+    static long counter;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] names = {"TTASLock", "TicketLock", "MyLock", "ReentrantLock"};
+        @SuppressWarnings("unchecked")
+        Supplier<SimpleLock>[] factories = new Supplier[]{
+                () -> {
+                    TTASLock lock = new TTASLock();
+                    return simple(lock::lock, lock::unlock);
+                },
+                () -> {
+                    TicketLock lock = new TicketLock();
+                    return simple(lock::lock, lock::unlock);
+                },
+                () -> {
+                    MyLock lock = new MyLock();
+                    return simple(lock::lock, lock::unlock);
+                },
+                () -> {
+                    ReentrantLock lock = new ReentrantLock();
+                    return simple(lock::lock, lock::unlock);
+                }
+        };
+
+        // 预热
+        for (Supplier<SimpleLock> factory : factories) {
+            run(factory.get(), 4);
+        }
+
+        System.out.printf("%-8s", "threads");
+        for (String name : names) {
+            System.out.printf("%16s", name);
+        }
+        System.out.println("   (ops/s)");
+        for (int threads : THREAD_COUNTS) {
+            System.out.printf("%-8d", threads);
+            for (Supplier<SimpleLock> factory : factories) {
+                System.out.printf("%,16.0f", run(factory.get(), threads));
+            }
+            System.out.println();
+        }
+    }
+
+    private static SimpleLock simple(Runnable lock, Runnable unlock) {
+        return new SimpleLock() {
+            @Override
+            public void lock() {
+                lock.run();
+            }
+
+            @Override
+            public void unlock() {
+                unlock.run();
+            }
+        };
+    }
+
+    /**
+     * @return 每秒完成的临界区次数
+     */
+    private static double run(SimpleLock lock, int threadCount) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        counter = 0;
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long deadline = System.nanoTime() + DURATION_NANOS;
+                long n = 0;
+                while ((n & 255) != 0 || System.nanoTime() < deadline) {
+                    lock.lock();
+                    try {
+                        counter++;
+                    } finally {
+                        lock.unlock();
+                    }
+                    n++;
+                }
+                ops.add(n);
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (counter != ops.sum()) {
+            throw new IllegalStateException("mutual exclusion violated: " + counter + " != " + ops.sum());
+        }
+        return ops.sum() * 1e9 / DURATION_NANOS;
+    }
+
+}
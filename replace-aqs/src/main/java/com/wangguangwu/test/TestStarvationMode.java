@@ -0,0 +1,94 @@
+package com.wangguangwu.test;
+
+import util.concurrent.locks.ReentrantLock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 对比非公平锁、带饥饿模式的非公平锁、公平锁的吞吐量和最坏等待时间
+ * <p>
+ * 带饥饿模式的非公平锁吞吐量应该接近非公平锁，而最大等待时间应该接近公平锁
+ *
+ * @author wangguangwu
+ */
+public class TestStarvationMode {
+
+    private static final int THREADS = 8;
+
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    static long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        // 预热
+        run("warmup", new ReentrantLock());
+
+        run("nonfair", new ReentrantLock());
+        run("nonfair+starvation", new ReentrantLock(1, TimeUnit.MILLISECONDS));
+        run("fair", new ReentrantLock(true));
+        run("j.u.c nonfair", new java.util.concurrent.locks.ReentrantLock(false));
+    }
+
+    private static void run(String name, Lock lock) throws InterruptedException {
+        LatencyHistogram[] histograms = new LatencyHistogram[THREADS];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            histograms[i] = histogram;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long deadline = System.nanoTime() + DURATION_NANOS;
+                long local = 0;
+                for (;;) {
+                    long begin = System.nanoTime();
+                    if (begin >= deadline) {
+                        break;
+                    }
+                    lock.lock();
+                    try {
+                        // 每次加锁都记录，直方图的次数就是完成的操作数
+                        histogram.record(System.nanoTime() - begin);
+                        // 很短的临界区
+                        local += work(200);
+                    } finally {
+                        lock.unlock();
+                    }
+                    // 临界区外的工作
+                    local += work(50);
+                }
+                sink += local;
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms) {
+            all.add(histogram);
+        }
+        double seconds = DURATION_NANOS / 1e9;
+        System.out.printf("%-20s throughput=%,12.0f ops/s  p99=%,10d ns  p99.99=%,12d ns  max=%,12d ns%n",
+                name, all.count() / seconds,
+                all.percentile(0.99), all.percentile(0.9999), all.max());
+    }
+
+    private static long work(int iterations) {
+        long x = 0;
+        for (int i = 0; i < iterations; i++) {
+            x += i * 31L ^ x;
+        }
+        return x;
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.wangguangwu.test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 排号自旋锁，带比例退避
+ * <p>
+ * 加锁时领一个号，等叫到自己的号时拿到锁，严格按照先来后到的顺序。
+ * 每个线程只需要一次原子操作，之后只读 nowServing。
+ * 前面排的人越多，等待的时间越长，所以退避时间和前面排队的人数成正比，减少无用的读。
+ * 自旋一定轮数后还没轮到，就挂起线程，等前一个持有锁的线程叫号时唤醒。
+ * 超时或者被中断的线程放弃自己的号，叫号时跳过放弃的号，不会卡住后面排队的线程。
+ * <p>
+ * 不可重入，也不检查释放锁的线程是否持有锁。
+ *
+ * @author wangguangwu
+ */
+public class TicketLock implements Lock {
+
+    /**
+     * 前面每有一个线程，退避的自旋次数
+     */
+    static final int BACKOFF_PER_WAITER = 64;
+
+    /**
+     * 挂起之前最多退避的轮数
+     */
+    static final int MAX_SPIN_ROUNDS = 16;
+
+    /**
+     * 下一个要发的号
+     */
+    private final AtomicInteger nextTicket = new AtomicInteger();
+
+    /**
+     * 当前叫到的号，只有持有锁的线程会修改
+     */
+    private volatile int nowServing;
+
+    /**
+     * 挂起的线程，key 是它的号
+     */
+    private final ConcurrentHashMap<Integer, Thread> parked = new ConcurrentHashMap<>();
+
+    /**
+     * 超时或者被中断后放弃的号
+     */
+    private final Set<Integer> abandoned = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 领号，自旋、退避，然后挂起直到叫到自己的号或者超时
+     *
+     * @param deadline      超时时间点，0 表示不超时
+     * @param interruptible 是否响应中断
+     * @return 是否获取成功
+     */
+    private boolean acquire(long deadline, boolean interruptible) throws InterruptedException {
+        final int ticket = nextTicket.getAndIncrement();
+        int seed = SpinWait.seed(ThreadLocalRandom.current().nextInt());
+        for (int round = 0; round < MAX_SPIN_ROUNDS; round++) {
+            // 用减法计算距离，号溢出后也是对的
+            int distance = ticket - nowServing;
+            if (distance == 0) {
+                return true;
+            }
+            if (interruptible && Thread.interrupted()) {
+                cancel(ticket);
+                throw new InterruptedException();
+            }
+            if (deadline != 0L && deadline - System.nanoTime() <= 0L) {
+                return abandon(ticket);
+            }
+            // 空转的时间和前面的人数成正比，再加一点随机量，期间不读 nowServing，每轮只读一次
+            seed = SpinWait.spin(seed, distance * BACKOFF_PER_WAITER + (seed & (BACKOFF_PER_WAITER - 1)));
+        }
+        return park(ticket, deadline, interruptible);
+    }
+
+    /**
+     * 自旋失败，挂起直到叫到自己的号或者超时
+     */
+    private boolean park(int ticket, long deadline, boolean interruptible) throws InterruptedException {
+        final Thread current = Thread.currentThread();
+        final Integer key = ticket;
+        // 先登记再检查 nowServing，和 unlock 中先叫号再查登记配合，不会丢失唤醒
+        parked.put(key, current);
+        // 标记等待过程中是否中断过
+        boolean interrupted = false;
+        try {
+            while (nowServing != ticket) {
+                if (deadline == 0L) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return abandon(ticket);
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        cancel(ticket);
+                        throw new InterruptedException();
+                    }
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            parked.remove(key);
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
+    }
+
+    /**
+     * 放弃自己的号
+     * <p>
+     * 先登记放弃再检查 nowServing，和 unlock 中先叫号再查登记配合：
+     * 要么 unlock 看到登记跳过这个号，要么这里看到已经叫到自己的号，
+     * 两边都去删除登记，删除成功的一方负责处理这个号
+     *
+     * @return 已经叫到自己的号并且由自己处理时返回 true，此时当前线程持有锁
+     */
+    private boolean abandon(int ticket) {
+        final Integer key = ticket;
+        abandoned.add(key);
+        return nowServing == ticket && abandoned.remove(key);
+    }
+
+    /**
+     * 被中断时放弃自己的号，如果已经拿到了锁，把锁交给下一个号
+     */
+    private void cancel(int ticket) {
+        if (abandon(ticket)) {
+            unlock();
+        }
+    }
+
+    //=========================实现了 lock 接口================================
+
+    @Override
+    public void lock() {
+        try {
+            acquire(0L, false);
+        } catch (InterruptedException e) {
+            // 不响应中断时不会抛出
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        // 没有人排队时，领号就能直接拿到锁
+        int serving = nowServing;
+        return nextTicket.get() == serving && nextTicket.compareAndSet(serving, serving + 1);
+    }
+
+    @Override
+    public void unlock() {
+        // 只有持有锁的线程会修改 nowServing，不需要 CAS
+        int next = nowServing + 1;
+        nowServing = next;
+        // 跳过已经放弃的号，删除失败说明这个号还在等待，或者由放弃的线程自己处理
+        while (abandoned.remove(next)) {
+            next++;
+            nowServing = next;
+        }
+        // 下一个号的线程如果已经挂起，唤醒它
+        Thread waiter = parked.get(next);
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        acquire(0L, true);
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long nanos = unit.toNanos(time);
+        if (nanos <= 0L) {
+            return tryLock();
+        }
+        // 0 表示不超时，所以避开 0
+        long deadline = System.nanoTime() + nanos;
+        return acquire(deadline == 0L ? 1L : deadline, true);
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+}
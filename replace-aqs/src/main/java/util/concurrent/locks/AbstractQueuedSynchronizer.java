@@ -75,6 +75,11 @@ public abstract class AbstractQueuedSynchronizer
          */
         Node nextWaiter;
 
+        /**
+         * 节点入队的时间（System.nanoTime），在发布到队列之前写入
+         */
+        long enqueueTime;
+
 
         final Node predecessor() throws NullPointerException {
             Node p = prev;
@@ -104,6 +109,12 @@ public abstract class AbstractQueuedSynchronizer
 
     private transient volatile Node tail;
 
+    /**
+     * 队列中等待的线程数，入队时加一，出队（成为头节点或者取消）时减一，
+     * 不需要遍历队列就能拿到队列长度
+     */
+    private transient volatile int queueLength;
+
 
     private static final Unsafe unsafe = AbstractQueuedSynchronizer.reflectGetUnsafe();
 
@@ -111,6 +122,8 @@ public abstract class AbstractQueuedSynchronizer
      * 通过反射拿到 unsafe
      * <p>
      * Unsafe.getUnsafe 方法会校验是否是引导类加载，如果不是，就抛出 unsafe 异常
+     * <p>
+     * 拿不到 unsafe 时直接抛出 Error，否则后面计算偏移量时只会得到一个 NullPointerException
      *
      * @return unsafe
      */
@@ -120,14 +133,14 @@ public abstract class AbstractQueuedSynchronizer
             field.setAccessible(true);
             return (Unsafe) field.get(null);
         } catch (Exception e) {
-            System.out.println(e.getMessage());
-            return null;
+            throw new Error(e);
         }
     }
 
     private static final long stateOffset;
     private static final long headOffset;
     private static final long tailOffset;
+    private static final long queueLengthOffset;
     private static final long waitStatusOffset;
     private static final long nextOffset;
 
@@ -139,6 +152,8 @@ public abstract class AbstractQueuedSynchronizer
                     (AbstractQueuedSynchronizer.class.getDeclaredField("head"));
             tailOffset = unsafe.objectFieldOffset
                     (AbstractQueuedSynchronizer.class.getDeclaredField("tail"));
+            queueLengthOffset = unsafe.objectFieldOffset
+                    (AbstractQueuedSynchronizer.class.getDeclaredField("queueLength"));
             waitStatusOffset = unsafe.objectFieldOffset
                     (Node.class.getDeclaredField("waitStatus"));
             nextOffset = unsafe.objectFieldOffset
@@ -171,6 +186,19 @@ public abstract class AbstractQueuedSynchronizer
         state = newState;
     }
 
+    /**
+     * 以释放语义设置 state 的值，之前的读写不会被重排到它之后
+     * <p>
+     * 比 setState 少一个 StoreLoad 屏障，只能用在写完之后不需要唤醒等待线程的地方，
+     * 比如重入锁释放一层但仍然持有锁。真正释放锁时要用 setState，
+     * 否则后面对 head.waitStatus 的读可能被重排到写之前，导致等待线程无法被唤醒
+     *
+     * @param newState 新的 state 的值
+     */
+    protected final void setStateRelease(int newState) {
+        unsafe.putOrderedInt(this, stateOffset, newState);
+    }
+
     /**
      * 使用 CAS 方式更新 state
      *
@@ -216,6 +244,10 @@ public abstract class AbstractQueuedSynchronizer
     private Node addWaiter(Node mode) {
         // 把当前线程包装为一个节点
         Node node = new Node(Thread.currentThread(), mode);
+        // 记录入队时间，用于判断排队线程是否处于饥饿状态
+        node.enqueueTime = System.nanoTime();
+        // 快速入队和 enq 两条路径都会经过这里，统一在入队前计数
+        addQueueLength(1);
         // Try the fast path of enq; backup to full enq on failure
         Node pred = tail;
         if (pred != null) {
@@ -237,10 +269,16 @@ public abstract class AbstractQueuedSynchronizer
     private void setHead(Node node) {
         // 将当前节点设置为虚节点，但是不修改 waitStatus，因为后续还需要使用
         head = node;
+        // 节点出队
+        addQueueLength(-1);
         node.thread = null;
         node.prev = null;
     }
 
+    private void addQueueLength(int delta) {
+        unsafe.getAndAddInt(this, queueLengthOffset, delta);
+    }
+
     /**
      * 唤醒后面的节点
      */
@@ -314,6 +352,9 @@ public abstract class AbstractQueuedSynchronizer
         if (node == null)
             return;
 
+        // 取消的节点不再算作等待线程
+        addQueueLength(-1);
+
         // 设置该节点不再关联任何线程
         node.thread = null;
 
@@ -363,6 +404,56 @@ public abstract class AbstractQueuedSynchronizer
             selfInterrupt();
     }
 
+    /**
+     * 在指定时间内获取锁，响应中断
+     *
+     * @param arg          获取的资源数
+     * @param nanosTimeout 最长等待时间
+     * @return 超时返回 false
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public final boolean tryAcquireNanos(int arg, long nanosTimeout)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        return tryAcquire(arg) ||
+                doAcquireNanos(arg, nanosTimeout);
+    }
+
+    private boolean doAcquireNanos(int arg, long nanosTimeout)
+            throws InterruptedException {
+        if (nanosTimeout <= 0L)
+            return false;
+        // 超时的时间点
+        final long deadline = System.nanoTime() + nanosTimeout;
+        final Node node = addWaiter(Node.EXCLUSIVE);
+        boolean failed = true;
+        try {
+            for (;;) {
+                final Node p = node.predecessor();
+                if (p == head && tryAcquire(arg)) {
+                    setHead(node);
+                    p.next = null; // help GC
+                    failed = false;
+                    return true;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0L)
+                    // 超时，在 finally 中取消节点
+                    return false;
+                // 剩余时间很短时直接自旋，不再挂起
+                if (shouldParkAfterFailedAcquire(p, node) &&
+                        nanosTimeout > spinForTimeoutThreshold)
+                    LockSupport.parkNanos(this, nanosTimeout);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
     private final boolean parkAndCheckInterrupt() {
         LockSupport.park(this);
         return Thread.interrupted();
@@ -444,6 +535,33 @@ public abstract class AbstractQueuedSynchronizer
         return unsafe.compareAndSwapObject(node, nextOffset, expect, update);
     }
 
+    /**
+     * 队列中等待的线程数
+     * <p>
+     * 由计数器维护，O(1) 时间返回，和队列的实际状态之间可能有短暂的偏差
+     *
+     * @return 等待的线程数
+     */
+    public final int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * 队列中第一个等待线程已经等待的时间
+     * <p>
+     * 只是一个估计值，读取过程中头节点可能已经被其它线程替换
+     *
+     * @return 等待的纳秒数，没有等待线程时返回 0
+     */
+    public final long getFirstQueuedWaitNanos() {
+        Node h = head;
+        Node s;
+        if (h == null || h == tail || (s = h.next) == null || s.thread == null) {
+            return 0L;
+        }
+        return System.nanoTime() - s.enqueueTime;
+    }
+
     public final Thread getFirstQueuedThread() {
         // handle only fast path, else relay
         return (head == tail) ? null : fullGetFirstQueuedThread();
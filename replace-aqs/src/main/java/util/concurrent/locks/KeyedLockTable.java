@@ -0,0 +1,201 @@
+package util.concurrent.locks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 按 key 加锁的锁表，每个 key 对应一把独立的 ReentrantLock，不同 key 之间不会像分段锁那样冲突
+ * <p>
+ * 锁在第一次使用时创建，通过引用计数记录持有和等待这把锁的次数，
+ * 最后一个持有者释放后就从表中移除，所以表的大小只和正在使用的 key 数量有关。
+ * 查找路径上没有全局锁：引用计数通过 CAS 增加，计数为 0 的锁已经失效，
+ * 遇到失效的锁时帮忙把它从表中删除，然后重试。
+ * <p>
+ * 同一个线程可以对同一个 key 重入，每次成功的 lock / tryLock 都要对应一次 unlock。
+ *
+ * @param <K> key 的类型，需要正确实现 equals 和 hashCode
+ * @author wangguangwu
+ */
+public class KeyedLockTable<K> {
+
+    /**
+     * 带引用计数的锁
+     */
+    static final class KeyedLock extends ReentrantLock {
+
+        private static final long serialVersionUID = 3147125263416523421L;
+
+        private static final AtomicIntegerFieldUpdater<KeyedLock> REFERENCES =
+                AtomicIntegerFieldUpdater.newUpdater(KeyedLock.class, "references");
+
+        /**
+         * 持有和等待这把锁的次数，0 表示已经失效，不能再被使用
+         */
+        private volatile int references = 1;
+
+        KeyedLock(boolean isFair) {
+            super(isFair);
+        }
+
+        /**
+         * 引用计数加一
+         *
+         * @return 锁已经失效时返回 false
+         */
+        boolean retain() {
+            for (;;) {
+                int r = references;
+                if (r == 0) {
+                    return false;
+                }
+                if (r + 1 < 0) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                if (REFERENCES.compareAndSet(this, r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 引用计数减一
+         *
+         * @return 计数减到 0 时返回 true，锁已经失效
+         */
+        boolean release() {
+            return REFERENCES.decrementAndGet(this) == 0;
+        }
+    }
+
+    private final ConcurrentHashMap<K, KeyedLock> locks;
+
+    /**
+     * 是否使用公平锁
+     */
+    private final boolean isFair;
+
+    public KeyedLockTable() {
+        this(false);
+    }
+
+    public KeyedLockTable(boolean isFair) {
+        this.locks = new ConcurrentHashMap<>();
+        this.isFair = isFair;
+    }
+
+    /**
+     * 获取 key 对应的锁，需要时创建
+     *
+     * @param key key
+     */
+    public void lock(K key) {
+        KeyedLock lock = retain(key);
+        try {
+            lock.lock();
+        } catch (RuntimeException | Error e) {
+            // 没有拿到锁，归还引用
+            release(key, lock);
+            throw e;
+        }
+    }
+
+    /**
+     * 尝试获取 key 对应的锁，不等待
+     *
+     * @param key key
+     * @return 获取成功返回 true
+     */
+    public boolean tryLock(K key) {
+        KeyedLock lock = retain(key);
+        boolean locked = false;
+        try {
+            locked = lock.tryLock();
+        } finally {
+            if (!locked) {
+                // 没有拿到锁，归还引用
+                release(key, lock);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * 在指定时间内获取 key 对应的锁，响应中断
+     *
+     * @param key     key
+     * @param timeout 最长等待时间
+     * @param unit    时间单位
+     * @return 获取成功返回 true，超时返回 false
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public boolean tryLock(K key, long timeout, TimeUnit unit) throws InterruptedException {
+        KeyedLock lock = retain(key);
+        boolean locked = false;
+        try {
+            locked = lock.tryLock(timeout, unit);
+        } finally {
+            if (!locked) {
+                // 超时或者被中断，归还引用
+                release(key, lock);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * 释放 key 对应的锁，最后一个持有者释放时从表中移除
+     *
+     * @param key key
+     */
+    public void unlock(K key) {
+        KeyedLock lock = locks.get(key);
+        if (lock == null || !lock.isHeldByCurrentThread()) {
+            // 只允许持有线程释放锁
+            throw new IllegalMonitorStateException();
+        }
+        lock.unlock();
+        release(key, lock);
+    }
+
+    /**
+     * 当前表中锁的数量，即正在被持有或者等待的 key 的数量
+     *
+     * @return 锁的数量
+     */
+    public int size() {
+        return locks.size();
+    }
+
+    /**
+     * 找到 key 对应的锁并增加引用计数
+     */
+    private KeyedLock retain(K key) {
+        KeyedLock created = null;
+        for (;;) {
+            KeyedLock lock = locks.get(key);
+            if (lock == null) {
+                if (created == null) {
+                    created = new KeyedLock(isFair);
+                }
+                // 新创建的锁引用计数为 1，放入成功就归当前线程使用
+                lock = locks.putIfAbsent(key, created);
+                if (lock == null) {
+                    return created;
+                }
+            }
+            if (lock.retain()) {
+                return lock;
+            }
+            // 锁已经失效，但可能还没有从表中删除，帮忙删除后重试
+            locks.remove(key, lock);
+        }
+    }
+
+    private void release(K key, KeyedLock lock) {
+        if (lock.release()) {
+            locks.remove(key, lock);
+        }
+    }
+
+}
@@ -0,0 +1,484 @@
+package util.concurrent.locks;
+
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 跨进程的互斥锁，锁状态保存在内存映射文件中的一个 long 里
+ * <p>
+ * 和 AbstractQueuedSynchronizer#compareAndSetState 一样通过 Unsafe 做 CAS，
+ * 同一台机器上映射了同一个文件的 JVM 共享这个状态，加锁不需要系统调用。
+ * 获取失败时先自旋，然后指数退避地 park；退避期间会检查持有锁的进程是否还活着，
+ * 如果进程已经退出，则直接抢占这把锁。
+ * <p>
+ * 状态字的高 32 位是持有锁的进程 pid，低 32 位是一个序号，用来避免 ABA，0 表示锁空闲。
+ * 状态字后面的 8 个字节记录使用这把锁的进程所在的 pid namespace。
+ * 同一个进程内支持重入。
+ * <p>
+ * 只用 pid 判断持有者有两种误判，抢占都按“宁可不抢”的方向处理：
+ * <ul>
+ * <li>pid 被复用：持有者退出后 pid 被其它进程复用，锁会被当作仍然被持有，
+ * 直到那个进程退出，只影响可用性，不会破坏互斥</li>
+ * <li>不同 pid namespace（容器）的 JVM 共享同一个文件：对方的 pid 在本进程看来不存在或者是另一个进程，
+ * 所以一旦发现有不同 namespace 的进程使用这把锁，就不再抢占，持有者崩溃后需要人工清理</li>
+ * </ul>
+ * 无法判断进程是否存活时（比如 JDK 8 且没有 /proc），同样当作存活，不会抢占。
+ *
+ * @author wangguangwu
+ */
+public class MappedFileLock implements Lock, Closeable {
+
+    /**
+     * 锁占用的字节数：8 字节状态字加 8 字节 pid namespace
+     */
+    public static final int SIZE = 16;
+
+    /**
+     * pid namespace 在锁中的偏移
+     */
+    static final int NAMESPACE_OFFSET = 8;
+
+    /**
+     * 有不同 pid namespace 的进程使用这把锁，或者无法确定 namespace，此时不再抢占
+     */
+    static final long MIXED_NAMESPACES = -1L;
+
+    /**
+     * 获取失败后的自旋次数
+     */
+    static final int MAX_SPINS = 1 << 10;
+
+    /**
+     * 最小的退避时间
+     */
+    static final long MIN_BACKOFF_NANOS = 1000L;
+
+    /**
+     * 最大的退避时间
+     */
+    static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Unsafe unsafe = MappedFileLock.reflectGetUnsafe();
+
+    private static final long addressOffset;
+
+    static {
+        try {
+            addressOffset = unsafe.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+        } catch (Exception ex) {
+            throw new Error(ex);
+        }
+    }
+
+    /**
+     * 当前进程的 pid
+     */
+    private static final int PID = currentPid();
+
+    /**
+     * 状态字低 32 位的序号
+     */
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private final FileChannel channel;
+
+    /**
+     * 持有映射，防止被 GC 回收后地址失效
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * 状态字在内存中的地址
+     */
+    private final long address;
+
+    /**
+     * pid namespace 在内存中的地址
+     */
+    private final long namespaceAddress;
+
+    /**
+     * 本进程内持有锁的线程
+     */
+    private transient Thread owner;
+
+    /**
+     * 重入次数，只有持有锁的线程会修改
+     */
+    private int holds;
+
+    /**
+     * 映射文件开头的 16 个字节作为锁状态
+     *
+     * @param path 文件路径，不存在时会创建
+     * @throws IOException 打开或映射文件失败
+     */
+    public MappedFileLock(Path path) throws IOException {
+        this(path, 0L);
+    }
+
+    /**
+     * 映射文件指定位置的 16 个字节作为锁状态
+     *
+     * @param path     文件路径，不存在时会创建
+     * @param position 锁在文件中的位置，必须按 8 字节对齐
+     * @throws IOException 打开或映射文件失败
+     */
+    public MappedFileLock(Path path, long position) throws IOException {
+        if ((position & (Long.BYTES - 1)) != 0) {
+            throw new IllegalArgumentException("position must be 8-byte aligned: " + position);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, SIZE);
+        this.address = unsafe.getLong(buffer, addressOffset);
+        this.namespaceAddress = address + NAMESPACE_OFFSET;
+        registerNamespace();
+    }
+
+    /**
+     * 登记本进程的 pid namespace，发现和其它进程不同时标记为 MIXED_NAMESPACES
+     * <p>
+     * 持有锁之前一定已经登记过，所以抢占时读到的值覆盖了所有可能的持有者
+     */
+    private void registerNamespace() {
+        for (;;) {
+            long seen = unsafe.getLongVolatile(null, namespaceAddress);
+            if (seen == PID_NAMESPACE || seen == MIXED_NAMESPACES) {
+                return;
+            }
+            if (seen == 0L) {
+                if (unsafe.compareAndSwapLong(null, namespaceAddress, 0L, PID_NAMESPACE)) {
+                    return;
+                }
+                continue;
+            }
+            // 和已经登记的 namespace 不同，之后所有进程都不再抢占
+            unsafe.putLongVolatile(null, namespaceAddress, MIXED_NAMESPACES);
+            return;
+        }
+    }
+
+    /**
+     * 通过反射拿到 unsafe
+     *
+     * @return unsafe
+     */
+    private static Unsafe reflectGetUnsafe() {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    //=========================状态字==========================================
+
+    private long getWord() {
+        return unsafe.getLongVolatile(null, address);
+    }
+
+    private boolean compareAndSetWord(long expect, long update) {
+        return unsafe.compareAndSwapLong(null, address, expect, update);
+    }
+
+    private static long newWord() {
+        return ((long) PID << 32) | (SEQUENCE.incrementAndGet() & 0xFFFFFFFFL);
+    }
+
+    private static int pidOf(long word) {
+        return (int) (word >>> 32);
+    }
+
+    /**
+     * 尝试获取一次锁，如果持有锁的进程已经退出，则抢占
+     *
+     * @param checkOwner 是否检查持有锁的进程是否存活
+     * @return 是否获取成功
+     */
+    private boolean tryAcquireWord(boolean checkOwner) {
+        long w = getWord();
+        if (w == 0L) {
+            return compareAndSetWord(0L, newWord());
+        }
+        int pid = pidOf(w);
+        if (checkOwner && pid != PID && canTakeOver() && !isAlive(pid)) {
+            // 持有锁的进程已经退出，CAS 期望值是读到的完整状态字，避免抢占别人刚拿到的锁
+            return compareAndSetWord(w, newWord());
+        }
+        return false;
+    }
+
+    /**
+     * 是否允许抢占：本进程的 namespace 已知，并且所有使用这把锁的进程都在同一个 namespace 中
+     * <p>
+     * 本进程 namespace 未知时 PID_NAMESPACE 就是 MIXED_NAMESPACES，和登记的值相等，
+     * 所以必须单独判断，否则最不能解释 pid 的进程反而可以抢占
+     *
+     * @return boolean
+     */
+    private boolean canTakeOver() {
+        return PID_NAMESPACE != MIXED_NAMESPACES
+                && unsafe.getLongVolatile(null, namespaceAddress) == PID_NAMESPACE;
+    }
+
+    /**
+     * 自旋、退避直到获取锁或者超时
+     *
+     * @param deadline      超时时间点，0 表示不超时
+     * @param interruptible 是否响应中断
+     * @return 是否获取成功
+     */
+    private boolean acquire(long deadline, boolean interruptible) throws InterruptedException {
+        final Thread current = Thread.currentThread();
+        if (owner == current) {
+            // 重入
+            if (holds + 1 < 0) {
+                throw new Error("Maximum lock count exceeded");
+            }
+            holds++;
+            return true;
+        }
+        int spins = 0;
+        long backoff = MIN_BACKOFF_NANOS;
+        // 标记等待过程中是否中断过
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                // 自旋阶段只做 CAS，退避阶段才检查持有锁的进程是否存活
+                if (tryAcquireWord(spins >= MAX_SPINS)) {
+                    owner = current;
+                    holds = 1;
+                    return true;
+                }
+                if (spins < MAX_SPINS) {
+                    spins++;
+                    continue;
+                }
+                long parkNanos = backoff;
+                if (deadline != 0L) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    parkNanos = Math.min(parkNanos, remaining);
+                }
+                LockSupport.parkNanos(this, parkNanos);
+                if (Thread.interrupted()) {
+                    if (interruptible) {
+                        throw new InterruptedException();
+                    }
+                    interrupted = true;
+                }
+                backoff = Math.min(backoff << 1, MAX_BACKOFF_NANOS);
+            }
+        } finally {
+            if (interrupted) {
+                // 不响应中断时恢复中断标记
+                current.interrupt();
+            }
+        }
+    }
+
+    //=========================实现了 lock 接口================================
+
+    @Override
+    public void lock() {
+        try {
+            acquire(0L, false);
+        } catch (InterruptedException e) {
+            // 不响应中断时不会抛出
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        acquire(0L, true);
+    }
+
+    @Override
+    public boolean tryLock() {
+        final Thread current = Thread.currentThread();
+        if (owner == current) {
+            if (holds + 1 < 0) {
+                throw new Error("Maximum lock count exceeded");
+            }
+            holds++;
+            return true;
+        }
+        if (tryAcquireWord(true)) {
+            owner = current;
+            holds = 1;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long nanos = unit.toNanos(time);
+        if (nanos <= 0L) {
+            return tryLock();
+        }
+        // 0 表示不超时，所以避开 0
+        long deadline = System.nanoTime() + nanos;
+        return acquire(deadline == 0L ? 1L : deadline, true);
+    }
+
+    @Override
+    public void unlock() {
+        if (Thread.currentThread() != owner) {
+            // 只允许持有线程释放锁
+            throw new IllegalMonitorStateException();
+        }
+        if (--holds == 0) {
+            owner = null;
+            // 释放语义的写就足够了，等待者都是轮询状态字，不需要唤醒
+            unsafe.putOrderedLong(null, address, 0L);
+        }
+    }
+
+    @Override
+    public Condition newCondition() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 关闭文件，映射会在 buffer 被回收时释放
+     *
+     * @throws IOException 关闭失败
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    //=========================进程信息==========================================
+
+    /**
+     * 通过 RuntimeMXBean 的名字（pid@hostname）拿到当前进程的 pid
+     *
+     * @return pid
+     */
+    private static int currentPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        try {
+            return Integer.parseInt(index < 0 ? name : name.substring(0, index));
+        } catch (NumberFormatException e) {
+            throw new Error("Cannot determine pid from " + name, e);
+        }
+    }
+
+    /**
+     * 是否可以通过 /proc 判断进程是否存活
+     */
+    private static final boolean PROC_AVAILABLE = new File("/proc/self").exists();
+
+    /**
+     * 当前进程的 pid namespace，只在 Linux 上存在，其它系统上所有进程都相同
+     */
+    private static final long PID_NAMESPACE = currentPidNamespace();
+
+    /**
+     * 读取 /proc/self/ns/pid 链接（形如 pid:[4026531836]）中的 inode 号
+     *
+     * @return namespace 的 inode 号，Linux 上读取失败时返回 MIXED_NAMESPACES，
+     * 这时本进程会把这把锁登记为 MIXED_NAMESPACES，并且自己也永远不会抢占
+     */
+    private static long currentPidNamespace() {
+        if (!PROC_AVAILABLE) {
+            // 不是 Linux，没有 pid namespace
+            return 1L;
+        }
+        try {
+            String link = Files.readSymbolicLink(Paths.get("/proc/self/ns/pid")).toString();
+            int begin = link.indexOf('[');
+            int end = link.indexOf(']', begin + 1);
+            return Long.parseLong(link.substring(begin + 1, end));
+        } catch (Exception e) {
+            // 无法确定，登记为 MIXED_NAMESPACES，所有进程（包括本进程）都不再抢占
+            return MIXED_NAMESPACES;
+        }
+    }
+
+    /**
+     * JDK 9+ 的 ProcessHandle.of(long)，JDK 8 下为 null
+     */
+    private static final Method PROCESS_HANDLE_OF;
+
+    /**
+     * JDK 9+ 的 ProcessHandle.isAlive()，JDK 8 下为 null
+     */
+    private static final Method PROCESS_HANDLE_IS_ALIVE;
+
+    static {
+        Method of = null;
+        Method isAlive = null;
+        try {
+            Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+            of = processHandle.getMethod("of", long.class);
+            isAlive = processHandle.getMethod("isAlive");
+        } catch (Exception e) {
+            // JDK 8，使用 /proc 判断，没有 /proc 时不抢占
+        }
+        PROCESS_HANDLE_OF = of;
+        PROCESS_HANDLE_IS_ALIVE = isAlive;
+    }
+
+    /**
+     * 判断进程是否存活
+     * <p>
+     * JDK 9+ 使用 ProcessHandle，JDK 8 下在有 /proc 的系统上检查 /proc/pid 是否存在，
+     * 无法判断时返回 true，不会因此抢占一把仍然被持有的锁
+     *
+     * @param pid 进程号
+     * @return boolean
+     */
+    static boolean isAlive(int pid) {
+        if (PROCESS_HANDLE_OF != null) {
+            try {
+                Optional<?> handle = (Optional<?>) PROCESS_HANDLE_OF.invoke(null, (long) pid);
+                return handle.isPresent() && (Boolean) PROCESS_HANDLE_IS_ALIVE.invoke(handle.get());
+            } catch (Exception e) {
+                // 无法判断，当作存活
+                return true;
+            }
+        }
+        if (PROC_AVAILABLE) {
+            return new File("/proc/" + pid).exists();
+        }
+        // 无法判断，当作存活
+        return true;
+    }
+
+}
@@ -23,6 +23,22 @@ public class ReentrantLock implements Lock, java.io.Serializable {
         sync = isFair ? new FairSync() : new NonfairSync();
     }
 
+    /**
+     * 创建一个带饥饿模式的非公平锁
+     * <p>
+     * 默认构造的非公平锁不会进入饥饿模式，需要有界的最坏等待时间时使用这个构造方法，
+     * 阈值可以参考 Go 的 sync.Mutex，使用 1 毫秒
+     *
+     * @param starvationThreshold 队首线程等待超过该时间后，锁切换为 FIFO 交接，不能小于 0
+     * @param unit                时间单位
+     */
+    public ReentrantLock(long starvationThreshold, TimeUnit unit) {
+        if (starvationThreshold < 0) {
+            throw new IllegalArgumentException("starvationThreshold < 0: " + starvationThreshold);
+        }
+        sync = new StarvationAwareSync(unit.toNanos(starvationThreshold));
+    }
+
     //========================sync 类==================================
 
     abstract static class Sync extends AbstractQueuedSynchronizer {
@@ -66,15 +82,21 @@ public class ReentrantLock implements Lock, java.io.Serializable {
                 // 只允许持有线程释放锁
                 throw new IllegalMonitorStateException();
             }
-            boolean free = false;
             if (c == 0) {
                 // 锁被释放
-                free = true;
                 setExclusiveOwnerThread(null);
+                // 设置同步变量 state 的值，需要 volatile 写，保证之后能看到等待线程设置的 waitStatus
+                setState(c);
+                return true;
             }
-            // 设置同步变量 state 的值
-            setState(c);
-            return free;
+            // 仍然持有锁，只是减少重入次数，其它线程只关心 state 是否为 0，释放语义的写就足够了
+            setStateRelease(c);
+            return false;
+        }
+
+        final boolean isHeldExclusively() {
+            // 持有锁的线程是否是当前线程
+            return getExclusiveOwnerThread() == Thread.currentThread();
         }
 
     }
@@ -106,6 +128,88 @@ public class ReentrantLock implements Lock, java.io.Serializable {
 
     }
 
+    //================================StarvationAwareSync======================================
+
+    /**
+     * 非公平锁，带有饥饿模式
+     * <p>
+     * 正常模式下新来的线程可以直接抢锁；当队首线程等待超过阈值时进入饥饿模式，
+     * 新来的线程不再抢锁而是直接排队，锁按 FIFO 顺序交接给队首线程。
+     * 队首线程等待时间低于阈值或者队列清空后，回到正常模式。
+     */
+    static final class StarvationAwareSync extends Sync {
+
+        /**
+         * 队首线程等待超过该时间，进入饥饿模式
+         */
+        private final long starvationThresholdNanos;
+
+        /**
+         * 是否处于饥饿模式
+         */
+        private volatile boolean starving;
+
+        StarvationAwareSync(long starvationThresholdNanos) {
+            this.starvationThresholdNanos = starvationThresholdNanos;
+        }
+
+        @Override
+        void lock() {
+            // 尝试获取锁
+            // 饥饿模式下不抢锁，直接进入 acquire 排队
+            // java.util.concurrent.locks.AbstractQueuedSynchronizer#compareAndSetState
+            if (!starving && compareAndSetState(0, 1)) {
+                // 获取锁成功
+                // 将当前线程设置为独占线程
+                setExclusiveOwnerThread(Thread.currentThread());
+            } else {
+                // 获得锁失败，进入 acquire 方法进行后续处理
+                // java.util.concurrent.locks.AbstractQueuedSynchronizer#acquire 方法
+                acquire(1);
+            }
+        }
+
+        @Override
+        protected final boolean tryAcquire(int acquires) {
+            if (!starving) {
+                // java.util.concurrent.locks.ReentrantLock.Sync#nonfairTryAcquire
+                if (nonfairTryAcquire(acquires)) {
+                    return true;
+                }
+                // 获取锁失败，检查队首线程是否已经等待太久
+                if (getFirstQueuedWaitNanos() > starvationThresholdNanos) {
+                    starving = true;
+                }
+                return false;
+            }
+            // 饥饿模式，和公平锁一样，只有队首线程才能拿到锁
+            final Thread current = Thread.currentThread();
+            int c = getState();
+            if (c == 0) {
+                if (!hasQueuedPredecessors() && compareAndSetState(0, acquires)) {
+                    setExclusiveOwnerThread(current);
+                    // 这时还没有 setHead，如果当前线程是从队列中来的，head.next 就是它自己，
+                    // 队列长度也还包含它。参考 Go 的 sync.Mutex，满足下面任一条件就回到正常模式：
+                    // 1. 当前线程是最后一个等待者（或者根本没有排队），队列即将清空
+                    // 2. 当前线程自己的等待时间没有超过阈值
+                    if (getQueueLength() <= 1 || getFirstQueuedWaitNanos() <= starvationThresholdNanos) {
+                        starving = false;
+                    }
+                    return true;
+                }
+            } else if (current == getExclusiveOwnerThread()) {
+                int nextc = c + acquires;
+                if (nextc < 0) {
+                    throw new Error("Maximum lock count exceeded");
+                }
+                setState(nextc);
+                return true;
+            }
+            return false;
+        }
+
+    }
+
     //================================FairSync==============================
 
     static final class FairSync extends Sync {
@@ -167,12 +271,14 @@ public class ReentrantLock implements Lock, java.io.Serializable {
 
     @Override
     public boolean tryLock() {
-        throw new UnsupportedOperationException();
+        // 只尝试一次，不排队
+        return sync.tryAcquire(1);
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        throw new UnsupportedOperationException();
+        // java.util.concurrent.locks.AbstractQueuedSynchronizer#tryAcquireNanos
+        return sync.tryAcquireNanos(1, unit.toNanos(time));
     }
 
     @Override
@@ -180,6 +286,74 @@ public class ReentrantLock implements Lock, java.io.Serializable {
         sync.release(1);
     }
 
+    /**
+     * 带负载保护的加锁：队列中等待的线程少于 maxWaiters 时才排队等待，否则立即返回 false
+     * <p>
+     * 锁已经饱和时继续排队只会让所有线程的延迟都变差，调用方可以在拒绝后直接降级。
+     * 队列长度的检查和入队不是原子的，并发时实际排队的线程数可能略微超过 maxWaiters
+     *
+     * @param maxWaiters 允许排队的最大线程数，0 表示锁被占用时不排队
+     * @return 获取锁成功返回 true，队列太长被拒绝返回 false
+     */
+    public boolean tryLockIfQueueBelow(int maxWaiters) {
+        if (maxWaiters < 0) {
+            throw new IllegalArgumentException("maxWaiters < 0: " + maxWaiters);
+        }
+        // 先尝试直接获取锁，成功就不用关心队列长度
+        if (sync.tryAcquire(1)) {
+            return true;
+        }
+        if (sync.getQueueLength() >= maxWaiters) {
+            // 队列太长，拒绝
+            return false;
+        }
+        sync.acquire(1);
+        return true;
+    }
+
+    /**
+     * tryLockIfQueueBelow 的超时版本，排队后最多等待指定的时间
+     *
+     * @param maxWaiters 允许排队的最大线程数，0 表示锁被占用时不排队
+     * @param timeout    最长等待时间
+     * @param unit       时间单位
+     * @return 获取锁成功返回 true，队列太长被拒绝或者超时返回 false
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public boolean tryLockIfQueueBelow(int maxWaiters, long timeout, TimeUnit unit) throws InterruptedException {
+        if (maxWaiters < 0) {
+            throw new IllegalArgumentException("maxWaiters < 0: " + maxWaiters);
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (sync.tryAcquire(1)) {
+            return true;
+        }
+        if (sync.getQueueLength() >= maxWaiters) {
+            return false;
+        }
+        return sync.tryAcquireNanos(1, unit.toNanos(timeout));
+    }
+
+    /**
+     * 等待获取锁的线程数，O(1)
+     *
+     * @return 等待的线程数
+     */
+    public final int getQueueLength() {
+        return sync.getQueueLength();
+    }
+
+    /**
+     * 当前线程是否持有锁
+     *
+     * @return boolean
+     */
+    public boolean isHeldByCurrentThread() {
+        return sync.isHeldExclusively();
+    }
+
     @Override
     public Condition newCondition() {
         throw new UnsupportedOperationException();
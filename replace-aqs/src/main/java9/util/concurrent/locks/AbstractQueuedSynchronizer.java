@@ -0,0 +1,595 @@
+package util.concurrent.locks;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.AbstractOwnableSynchronizer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JDK 9+ 版本，打包在 multi-release jar 的 META-INF/versions/9 下
+ * <p>
+ * 用 VarHandle 代替 Unsafe，只在需要的地方使用 volatile 语义，
+ * 其余的写使用 release / opaque 模式
+ *
+ * @author wangguangwu
+ */
+public abstract class AbstractQueuedSynchronizer
+        extends AbstractOwnableSynchronizer
+        implements java.io.Serializable {
+
+    private static final long serialVersionUID = 7373984972572414691L;
+
+    protected AbstractQueuedSynchronizer() {
+    }
+
+    static final class Node {
+
+        /**
+         * 线程以共享的模式等待锁
+         */
+        static final Node SHARED = new Node();
+
+        /**
+         * 线程以独占的方式等待锁
+         */
+        static final Node EXCLUSIVE = null;
+
+        /**
+         * 表示线程获取锁的请求已经取消了
+         */
+        static final int CANCELLED = 1;
+
+        /**
+         * 线程已经准备好，等待资源释放
+         */
+        static final int SIGNAL = -1;
+
+        /**
+         * 节点在等待队列中，节点线程等待唤醒
+         */
+        static final int CONDITION = -2;
+
+        /**
+         * 当前线程处于 SHARED 模式下
+         */
+        static final int PROPAGATE = -3;
+
+        /**
+         * 当前节点在队列中的状态
+         */
+        volatile int waitStatus;
+
+        /**
+         * 前驱指针
+         */
+        volatile Node prev;
+
+        /**
+         * 后继指针
+         */
+        volatile Node next;
+
+        /**
+         * 处于该节点的线程
+         */
+        volatile Thread thread;
+
+        /**
+         * 指向下一个处于 CONDITION 状态的节点
+         */
+        Node nextWaiter;
+
+        /**
+         * 节点入队的时间（System.nanoTime），在发布到队列之前写入
+         */
+        long enqueueTime;
+
+
+        final Node predecessor() throws NullPointerException {
+            Node p = prev;
+            if (p == null) {
+                throw new NullPointerException();
+            } else {
+                return p;
+            }
+        }
+
+        Node() {
+
+        }
+
+        Node(Thread thread, Node mode) {
+            this.nextWaiter = mode;
+            this.thread = thread;
+        }
+
+        Node(Thread thread, int waitStatus) {
+            this.waitStatus = waitStatus;
+            this.thread = thread;
+        }
+    }
+
+    private transient volatile Node head;
+
+    private transient volatile Node tail;
+
+    /**
+     * 队列中等待的线程数，入队时加一，出队（成为头节点或者取消）时减一，
+     * 不需要遍历队列就能拿到队列长度
+     */
+    private transient volatile int queueLength;
+
+
+    private static final VarHandle STATE;
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle QUEUE_LENGTH;
+    private static final VarHandle WAIT_STATUS;
+    private static final VarHandle NEXT;
+    private static final VarHandle PREV;
+    private static final VarHandle THREAD;
+
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            STATE = l.findVarHandle(AbstractQueuedSynchronizer.class, "state", int.class);
+            HEAD = l.findVarHandle(AbstractQueuedSynchronizer.class, "head", Node.class);
+            TAIL = l.findVarHandle(AbstractQueuedSynchronizer.class, "tail", Node.class);
+            QUEUE_LENGTH = l.findVarHandle(AbstractQueuedSynchronizer.class, "queueLength", int.class);
+            WAIT_STATUS = l.findVarHandle(Node.class, "waitStatus", int.class);
+            NEXT = l.findVarHandle(Node.class, "next", Node.class);
+            PREV = l.findVarHandle(Node.class, "prev", Node.class);
+            THREAD = l.findVarHandle(Node.class, "thread", Thread.class);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * 当前临界资源的获锁情况
+     */
+    private volatile int state;
+
+    /**
+     * 获取 state 的值
+     *
+     * @return state
+     */
+    protected final int getState() {
+        return state;
+    }
+
+    /**
+     * 设置 state 的值
+     *
+     * @param newState 新的 state 的值
+     */
+    protected final void setState(int newState) {
+        state = newState;
+    }
+
+    /**
+     * 以释放语义设置 state 的值，之前的读写不会被重排到它之后
+     * <p>
+     * 比 setState 少一个 StoreLoad 屏障，只能用在写完之后不需要唤醒等待线程的地方，
+     * 比如重入锁释放一层但仍然持有锁。真正释放锁时要用 setState，
+     * 否则后面对 head.waitStatus 的读可能被重排到写之前，导致等待线程无法被唤醒
+     *
+     * @param newState 新的 state 的值
+     */
+    protected final void setStateRelease(int newState) {
+        STATE.setRelease(this, newState);
+    }
+
+    /**
+     * 使用 CAS 方式更新 state
+     *
+     * @param expect 期望的状态
+     * @param update 更新后的状态
+     * @return boolean
+     */
+    protected final boolean compareAndSetState(int expect, int update) {
+        // See below for intrinsics setup to support this
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    static final long spinForTimeoutThreshold = 1000L;
+
+    /**
+     * 将节点插入队列
+     *
+     * @param node
+     */
+    private Node enq(Node node) {
+        // for 循环中操作，保证入队成功
+        for (; ; ) {
+            Node t = tail;
+            if (t == null) {
+                // 尾节点为 null，说明是第一次入队，当前队列为空
+                // 先创建一个头节点
+                if (compareAndSetHead(new Node())) {
+                    // 将头节点赋值给尾节点
+                    // 头节点已经通过 CAS 发布，释放语义的写就足够了
+                    TAIL.setRelease(this, head);
+                }
+            } else {
+                // 不是第一次入队，队列中至少有一个节点
+                // 将当前节点加到队列的尾部
+                node.prev = t;
+                if (compareAndSetTail(t, node)) {
+                    // node 已经通过 CAS tail 发布，next 只是一个可能滞后的提示
+                    NEXT.setRelease(t, node);
+                    return t;
+                }
+            }
+        }
+    }
+
+    private Node addWaiter(Node mode) {
+        // 把当前线程包装为一个节点
+        Node node = new Node(Thread.currentThread(), mode);
+        // 记录入队时间，用于判断排队线程是否处于饥饿状态
+        node.enqueueTime = System.nanoTime();
+        // 快速入队和 enq 两条路径都会经过这里，统一在入队前计数
+        addQueueLength(1);
+        // Try the fast path of enq; backup to full enq on failure
+        Node pred = tail;
+        if (pred != null) {
+            // 尾节点不为 null，说明链表中有数据
+            node.prev = pred;
+            // 执行一次快速入队操作
+            if (compareAndSetTail(pred, node)) {
+                NEXT.setRelease(pred, node);
+                return node;
+            }
+        }
+        // this.enq
+        // 队列为空，获取上面的快速入队操作失败
+        // 将节点插到队列中
+        enq(node);
+        return node;
+    }
+
+    private void setHead(Node node) {
+        // 将当前节点设置为虚节点，但是不修改 waitStatus，因为后续还需要使用
+        head = node;
+        // 节点出队
+        addQueueLength(-1);
+        // 只有持有锁的线程会执行到这里，其它线程读到旧值也会重新检查，opaque 就足够了
+        THREAD.setOpaque(node, null);
+        PREV.setOpaque(node, null);
+    }
+
+    private void addQueueLength(int delta) {
+        QUEUE_LENGTH.getAndAdd(this, delta);
+    }
+
+    /**
+     * 唤醒后面的节点
+     */
+    private void unparkSuccessor(Node node) {
+        // 拿到当前节点的 waitStatus
+        int ws = node.waitStatus;
+        if (ws < 0) {
+            // 如果当前节点的 waitStatus 小于 0，即在独占锁场景下处于等待资源释放、等待唤醒的情况，将节点的 waitStatus 更新为 0
+            compareAndSetWaitStatus(node, ws, 0);
+        }
+        // 当前节点的下一个节点
+        Node s = node.next;
+        // 如果为空或者被取消
+        if (s == null || s.waitStatus > 0) {
+            s = null;
+            // 从队列尾部向前遍历找到最前面的一个 waitStatus <= 0 的节点
+            for (Node t = tail; t != null && t != node; t = t.prev) {
+                if (t.waitStatus <= 0) {
+                    s = t;
+                }
+            }
+        }
+        if (s != null) {
+            // 唤醒节点，但并不表示它持有锁，要从阻塞的地方开始执行
+            LockSupport.unpark(s.thread);
+        }
+    }
+
+    static void selfInterrupt() {
+        // 当前线程中断
+        Thread.currentThread().interrupt();
+    }
+
+    final boolean acquireQueued(final Node node, int arg) {
+        // 标记是否成功拿到资源
+        boolean failed = true;
+        try {
+            // 标记等待过程中是否中断过
+            boolean interrupted = false;
+            // 开始自旋，要么获取锁，要么中断
+            for (;;) {
+                // 获取当前节点的前驱节点
+                final Node p = node.predecessor();
+                // 如果 p 是头节点，说明当前节点是队列中第一个有真实线程的节点
+                // 尝试获取锁
+                if (p == head && tryAcquire(arg)) {
+                    // 获取锁成功，头指针移动到当前 node
+                    setHead(node);
+                    NEXT.setOpaque(p, null); // help GC
+                    failed = false;
+                    return interrupted;
+                }
+                // 两种情况
+                // 1. P 不为头节点
+                // 2. p 为头节点但是获取锁失败（可能是非公平锁）
+                // 此时判断当前 node 是否要被阻塞（被阻塞条件：当前线程的前驱节点的 waitStatus = -1），防止无限循环浪费资源
+                if (shouldParkAfterFailedAcquire(p, node) &&
+                        // 挂起当前线程
+                        parkAndCheckInterrupt())
+                    interrupted = true;
+            }
+        } finally {
+            if (failed)
+                // 将 node 节点的状态标记为 CANCELED
+                cancelAcquire(node);
+        }
+    }
+
+    // 处理异常退出的 node
+    private void cancelAcquire(Node node) {
+        if (node == null)
+            return;
+
+        // 取消的节点不再算作等待线程
+        addQueueLength(-1);
+
+        // 设置该节点不再关联任何线程
+        THREAD.setOpaque(node, null);
+
+        // 跳过 CANCELLED 节点，找到一个有效的前继节点
+        Node pred = node.prev;
+        while (pred.waitStatus > 0)
+            node.prev = pred = pred.prev;
+
+        // 获取过滤后的有效节点的后继节点
+        Node predNext = pred.next;
+
+        // 设置状态为取消
+        node.waitStatus = Node.CANCELLED;
+
+        // 当前节点是为尾节点
+        if (node == tail && compareAndSetTail(node, pred)) {
+            compareAndSetNext(pred, predNext, null);
+        } else {
+
+            int ws;
+            if (pred != head &&
+                    ((ws = pred.waitStatus) == Node.SIGNAL ||
+                            (ws <= 0 && compareAndSetWaitStatus(pred, ws, Node.SIGNAL))) &&
+                    pred.thread != null) {
+                Node next = node.next;
+                if (next != null && next.waitStatus <= 0)
+                    compareAndSetNext(pred, predNext, next);
+            } else {
+                unparkSuccessor(node);
+            }
+
+            NEXT.setOpaque(node, node); // help GC
+        }
+    }
+
+    protected boolean tryAcquire(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    protected boolean tryRelease(int arg) {
+        throw new UnsupportedOperationException();
+    }
+
+    public final void acquire(int arg) {
+        if (!tryAcquire(arg) &&
+                acquireQueued(addWaiter(Node.EXCLUSIVE), arg))
+            selfInterrupt();
+    }
+
+    /**
+     * 在指定时间内获取锁，响应中断
+     *
+     * @param arg          获取的资源数
+     * @param nanosTimeout 最长等待时间
+     * @return 超时返回 false
+     * @throws InterruptedException 等待过程中被中断
+     */
+    public final boolean tryAcquireNanos(int arg, long nanosTimeout)
+            throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        return tryAcquire(arg) ||
+                doAcquireNanos(arg, nanosTimeout);
+    }
+
+    private boolean doAcquireNanos(int arg, long nanosTimeout)
+            throws InterruptedException {
+        if (nanosTimeout <= 0L)
+            return false;
+        // 超时的时间点
+        final long deadline = System.nanoTime() + nanosTimeout;
+        final Node node = addWaiter(Node.EXCLUSIVE);
+        boolean failed = true;
+        try {
+            for (;;) {
+                final Node p = node.predecessor();
+                if (p == head && tryAcquire(arg)) {
+                    setHead(node);
+                    NEXT.setOpaque(p, null); // help GC
+                    failed = false;
+                    return true;
+                }
+                nanosTimeout = deadline - System.nanoTime();
+                if (nanosTimeout <= 0L)
+                    // 超时，在 finally 中取消节点
+                    return false;
+                // 剩余时间很短时直接自旋，不再挂起
+                if (shouldParkAfterFailedAcquire(p, node) &&
+                        nanosTimeout > spinForTimeoutThreshold)
+                    LockSupport.parkNanos(this, nanosTimeout);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            if (failed)
+                cancelAcquire(node);
+        }
+    }
+
+    private final boolean parkAndCheckInterrupt() {
+        LockSupport.park(this);
+        return Thread.interrupted();
+    }
+
+    // 通过前驱节点判断当前线程是否应该被阻塞
+    private static boolean shouldParkAfterFailedAcquire(Node pred, Node node) {
+        // 获取前驱节点的节点状态
+        int ws = pred.waitStatus;
+        // 如果前驱节点处于唤醒状态，说明当前节点应该被阻塞
+        if (ws == Node.SIGNAL)
+            return true;
+        if (ws > 0) {
+            // ws > 0，说明是取消状态
+            do {
+                // 循环向前找到取消节点，把取消节点从队列中删除
+                node.prev = pred = pred.prev;
+            } while (pred.waitStatus > 0);
+            pred.next = node;
+        } else {
+            // 设置前驱节点等待状态为 SIGNAL
+            // 代表释放锁的时候需要唤醒后面的线程
+            compareAndSetWaitStatus(pred, ws, Node.SIGNAL);
+        }
+        // 当前节点不该被阻塞
+        return false;
+    }
+
+    private static boolean compareAndSetWaitStatus(Node node,
+                                                   int expect,
+                                                   int update) {
+        return WAIT_STATUS.compareAndSet(node, expect, update);
+    }
+
+
+    private boolean compareAndSetHead(Node update) {
+        return HEAD.compareAndSet(this, null, update);
+    }
+
+    private boolean compareAndSetTail(Node expect, Node update) {
+        return TAIL.compareAndSet(this, expect, update);
+    }
+
+    public final boolean hasQueuedPredecessors() {
+        Node t = tail; // Read fields in reverse initialization order
+        Node h = head;
+        Node s;
+        return h != t &&
+                ((s = h.next) == null || s.thread != Thread.currentThread());
+    }
+
+    public final boolean release(int arg) {
+        // java.util.concurrent.locks.ReentrantLock.Sync#tryRelease
+        // tryRelease 中具体的解锁逻辑，需要子类去实现
+        // 当 state = 0，表示锁被释放，tryRelease 方法返回 true，此时需要唤醒阻塞对流中的线程
+        if (tryRelease(arg)) {
+            Node h = head;
+            // h != null，说明同步队列中有数据
+            // h.waitStatus != 0，分为两种情况
+            // h.waitStatus < 0，需要唤醒下一个线程
+            // h.waitStatus > 0，说明头节点因为发生异常被设置为取消
+            if (h != null && h.waitStatus != 0) {
+                // 唤醒后继节点
+                unparkSuccessor(h);
+                // 释放成功，返回 true
+                return true;
+            }
+        }
+        // 释放失败，返回 false
+        return false;
+    }
+
+    /**
+     * CAS next field of a node.
+     */
+    private static final boolean compareAndSetNext(Node node,
+                                                   Node expect,
+                                                   Node update) {
+        return NEXT.compareAndSet(node, expect, update);
+    }
+
+    /**
+     * 队列中等待的线程数
+     * <p>
+     * 由计数器维护，O(1) 时间返回，和队列的实际状态之间可能有短暂的偏差
+     *
+     * @return 等待的线程数
+     */
+    public final int getQueueLength() {
+        return queueLength;
+    }
+
+    /**
+     * 队列中第一个等待线程已经等待的时间
+     * <p>
+     * 只是一个估计值，读取过程中头节点可能已经被其它线程替换
+     *
+     * @return 等待的纳秒数，没有等待线程时返回 0
+     */
+    public final long getFirstQueuedWaitNanos() {
+        Node h = head;
+        Node s;
+        if (h == null || h == tail || (s = h.next) == null || s.thread == null) {
+            return 0L;
+        }
+        return System.nanoTime() - s.enqueueTime;
+    }
+
+    public final Thread getFirstQueuedThread() {
+        // handle only fast path, else relay
+        return (head == tail) ? null : fullGetFirstQueuedThread();
+    }
+
+    /**
+     * Version of getFirstQueuedThread called when fastpath fails
+     */
+    private Thread fullGetFirstQueuedThread() {
+        /*
+         * The first node is normally head.next. Try to get its
+         * thread field, ensuring consistent reads: If thread
+         * field is nulled out or s.prev is no longer head, then
+         * some other thread(s) concurrently performed setHead in
+         * between some of our reads. We try this twice before
+         * resorting to traversal.
+         */
+       Node h, s;
+        Thread st;
+        if (((h = head) != null && (s = h.next) != null &&
+                s.prev == head && (st = s.thread) != null) ||
+                ((h = head) != null && (s = h.next) != null &&
+                        s.prev == head && (st = s.thread) != null))
+            return st;
+
+        /*
+         * Head's next field might not have been set yet, or may have
+         * been unset after setHead. So we must check to see if tail
+         * is actually first node. If not, we continue on, safely
+         * traversing from tail back to head to find first,
+         * guaranteeing termination.
+         */
+
+        Node t = tail;
+        Thread firstThread = null;
+        while (t != null && t != head) {
+            Thread tt = t.thread;
+            if (tt != null)
+                firstThread = tt;
+            t = t.prev;
+        }
+        return firstThread;
+    }
+
+
+}